@@ -1,10 +1,14 @@
 package de.belzmann.donut.controller;
 
+import de.belzmann.donut.model.DeliveryDto;
 import de.belzmann.donut.model.Order;
 import de.belzmann.donut.service.OrderService;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.util.List;
 
@@ -38,4 +42,21 @@ public class DeliveryController {
     void finishDelivery() {
         service.finishDelivery();
     }
+
+    /**
+     * Returns the planned deliveries, together with their projected dispatch times.
+     * The orders of each delivery are determined the same way as for {@link #getNextDelivery},
+     * so the first returned delivery is the one that {@link #getNextDelivery} will return
+     * once the current delivery (if there is one) is finished.
+     *
+     * @param count The maximal number of deliveries to return.
+     */
+    @GetMapping("/deliveries/upcoming")
+    List<DeliveryDto> getUpcomingDeliveries(@RequestParam(defaultValue = "1") int count) {
+        if (count < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "The number of deliveries can't be negative.");
+        }
+        return service.getUpcomingDeliveries(count);
+    }
 }
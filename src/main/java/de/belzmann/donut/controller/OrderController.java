@@ -45,10 +45,6 @@ public class OrderController {
         } catch (MultipleOrdersException e) {
             throw new ResponseStatusException(HttpStatus.FORBIDDEN,
                     "Only one order per client is permitted.");
-        } catch (OrderNotFoundException e) {
-            // This shouldn't happen. We just added the order, and then can't find it?
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
-                    "Something went wrong adding the order.");
         }
     }
 
@@ -0,0 +1,24 @@
+package de.belzmann.donut.model;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Contains the orders of a planned delivery, together with its position
+ * among the upcoming deliveries and the projected dispatch time.
+ */
+public class DeliveryDto {
+    public final int deliveryPosition;
+    public final Instant dispatchTime;
+    public final String approximateWaitTime;
+    public final int donutQuantity;
+    public final List<Order> orders;
+
+    public DeliveryDto(List<Order> orders, int deliveryPosition, Instant dispatchTime, String approximateWaitTime) {
+        this.deliveryPosition = deliveryPosition;
+        this.dispatchTime = dispatchTime;
+        this.approximateWaitTime = approximateWaitTime;
+        this.donutQuantity = orders.stream().mapToInt(Order::getDonutQuantity).sum();
+        this.orders = orders;
+    }
+}
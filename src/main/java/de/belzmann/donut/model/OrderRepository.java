@@ -7,7 +7,7 @@ import java.util.stream.Stream;
 
 public interface OrderRepository extends JpaRepository<Order, Integer> {
 
-    @Query("SELECT o FROM Order o ORDER BY isPriority DESC, orderTime ASC")
+    @Query("SELECT o FROM Order o ORDER BY isPriority DESC, orderTime ASC, orderId ASC")
     Stream<Order> findAllOrdersByPriority();
 
     boolean existsByClientId(int clientId);
@@ -0,0 +1,199 @@
+package de.belzmann.donut.service;
+
+import de.belzmann.donut.model.Order;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static de.belzmann.donut.service.OrderService.MAX_DELIVERY_SIZE;
+
+/**
+ * The planned carts for all orders in the queue that are not yet part of a delivery.
+ * Orders are put into carts in their priority queue order, and a new cart is started
+ * as soon as the next order wouldn't fit into the current one anymore, so the first
+ * cart is always the one that will be returned for the next delivery.
+ * The plan is kept up to date incrementally: adding or removing an order only replans
+ * the carts from the affected one onwards, and stops as soon as the cart boundaries line
+ * up with the previous plan again.
+ */
+class DeliveryPlan {
+
+    /**
+     * The priority queue order, same as in {@link de.belzmann.donut.model.OrderRepository#findAllOrdersByPriority}.
+     */
+    static final Comparator<Order> QUEUE_ORDER = Comparator
+            .comparing(Order::isPriority, Comparator.reverseOrder())
+            .thenComparing(Order::getOrderTime)
+            .thenComparing(Order::getOrderId);
+
+    /**
+     * The place of an order in the plan.
+     */
+    static class Placement {
+        /**
+         * The index of the cart that contains the order, 0 for the next delivery.
+         */
+        final int cartIndex;
+
+        /**
+         * The position of the order in the queue, starting at 1.
+         */
+        final int queuePosition;
+
+        Placement(int cartIndex, int queuePosition) {
+            this.cartIndex = cartIndex;
+            this.queuePosition = queuePosition;
+        }
+    }
+
+    /**
+     * The planned carts. A cart is never changed after it was added here, replanning always
+     * replaces the affected carts with new lists.
+     */
+    private final List<List<Order>> carts = new ArrayList<>();
+
+    /**
+     * Creates the plan from the orders, which have to be sorted in the priority queue order already.
+     */
+    DeliveryPlan(Stream<Order> ordersByPriority) {
+        replanFrom(0, 0, ordersByPriority.collect(Collectors.toList()));
+    }
+
+    /**
+     * Returns the planned carts, with the next delivery first. Only the list of carts is copied,
+     * the carts themselves are unmodifiable views of the planned carts, which is safe because
+     * a cart is never changed once it is planned.
+     */
+    synchronized List<List<Order>> getCarts() {
+        return carts.stream()
+                .map(Collections::unmodifiableList)
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * Inserts a new order at its position in the queue.
+     *
+     * @return the place of the new order in the plan
+     */
+    synchronized Placement add(Order order) {
+        // The order goes into the first cart that contains an order that comes after it, or else at the very end.
+        int cartIndex = 0;
+        while (cartIndex < carts.size() - 1 && QUEUE_ORDER.compare(order, lastOf(carts.get(cartIndex))) > 0) {
+            cartIndex++;
+        }
+
+        final List<Order> cart = cartIndex < carts.size() ? new ArrayList<>(carts.get(cartIndex)) : new ArrayList<>();
+        int position = Collections.binarySearch(cart, order, QUEUE_ORDER);
+        position = position < 0 ? -position - 1 : position;
+        cart.add(position, order);
+        replanFrom(cartIndex, cart, position == 0);
+        return placementOf(order);
+    }
+
+    /**
+     * Removes the order of a client from the plan.
+     *
+     * @return whether the plan contained an order for the client
+     */
+    synchronized boolean removeByClientId(int clientId) {
+        for (int cartIndex = 0; cartIndex < carts.size(); cartIndex++) {
+            final List<Order> cart = new ArrayList<>(carts.get(cartIndex));
+            final boolean firstRemoved = cart.get(0).getClientId() == clientId;
+            if (cart.removeIf(order -> order.getClientId() == clientId)) {
+                replanFrom(cartIndex, cart, firstRemoved);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the first cart from the plan, e.g. when it is loaded for a delivery.
+     * All other carts stay the same, they just move up by one delivery.
+     *
+     * @return the orders of the first cart, or an empty list if there are no orders
+     */
+    synchronized List<Order> removeFirstCart() {
+        return carts.isEmpty() ? new ArrayList<>() : carts.remove(0);
+    }
+
+    /**
+     * Replaces the cart at {@code cartIndex} with the given orders and replans it. If the first
+     * order of the cart has changed, the previous cart is replanned, too, since the new first
+     * order could fit into it now.
+     */
+    private void replanFrom(int cartIndex, List<Order> orders, boolean firstOrderChanged) {
+        if (firstOrderChanged && cartIndex > 0) {
+            final List<Order> previousCart = new ArrayList<>(carts.get(cartIndex - 1));
+            previousCart.addAll(orders);
+            replanFrom(cartIndex - 1, 2, previousCart);
+        } else {
+            replanFrom(cartIndex, 1, orders);
+        }
+    }
+
+    /**
+     * Replaces {@code replacedCarts} carts starting at {@code cartIndex} with the given orders and
+     * distributes them, together with the orders of the following carts, onto new carts.
+     * The orders of a following cart are only taken into account if the previous cart could
+     * still change them. Once the next cart would start with the same order as before, all
+     * following carts are unchanged and are kept as they are.
+     */
+    private void replanFrom(int cartIndex, int replacedCarts, List<Order> orders) {
+        final List<List<Order>> following = carts.subList(Math.min(cartIndex + replacedCarts, carts.size()), carts.size());
+        final Iterator<List<Order>> previousCarts = new ArrayList<>(following).iterator();
+        carts.subList(cartIndex, carts.size()).clear();
+
+        final Deque<Order> pending = new ArrayDeque<>(orders);
+        List<Order> cart = new ArrayList<>();
+        int cartSize = 0;
+        while (!pending.isEmpty() || previousCarts.hasNext()) {
+            if (pending.isEmpty()) {
+                final List<Order> previousCart = previousCarts.next();
+                if (!cart.isEmpty() && cartSize + previousCart.get(0).getDonutQuantity() > MAX_DELIVERY_SIZE) {
+                    // The cart boundaries line up with the previous plan again, from here on nothing changes
+                    carts.add(cart);
+                    carts.add(previousCart);
+                    previousCarts.forEachRemaining(carts::add);
+                    return;
+                }
+                pending.addAll(previousCart);
+            }
+
+            final Order order = pending.poll();
+            if (!cart.isEmpty() && cartSize + order.getDonutQuantity() > MAX_DELIVERY_SIZE) {
+                carts.add(cart);
+                cart = new ArrayList<>();
+                cartSize = 0;
+            }
+            cart.add(order);
+            cartSize += order.getDonutQuantity();
+        }
+        if (!cart.isEmpty()) {
+            carts.add(cart);
+        }
+    }
+
+    private Placement placementOf(Order order) {
+        int queuePosition = 1;
+        for (int cartIndex = 0; cartIndex < carts.size(); cartIndex++) {
+            final int index = carts.get(cartIndex).indexOf(order);
+            if (index >= 0) {
+                return new Placement(cartIndex, queuePosition + index);
+            }
+            queuePosition += carts.get(cartIndex).size();
+        }
+        throw new IllegalStateException("Order " + order.getOrderId() + " is not in the delivery plan");
+    }
+
+    private static Order lastOf(List<Order> cart) {
+        return cart.get(cart.size() - 1);
+    }
+}
@@ -1,5 +1,6 @@
 package de.belzmann.donut.service;
 
+import de.belzmann.donut.model.DeliveryDto;
 import de.belzmann.donut.model.Order;
 import de.belzmann.donut.model.OrderDto;
 import de.belzmann.donut.model.OrderRepository;
@@ -7,7 +8,8 @@ import de.belzmann.donut.model.exceptions.MultipleOrdersException;
 import de.belzmann.donut.model.exceptions.OrderNotFoundException;
 import de.belzmann.donut.model.exceptions.OrderTooLargeException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -15,17 +17,21 @@ import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * Service for managing orders. Is used by the {@link de.belzmann.donut.controller.OrderController}
  * for adding, deleting and reading orders, and by {@link de.belzmann.donut.controller.DeliveryController}
  * for gathering the next delivery.
+ * All changes to the queue are synchronized on the service and run their own transaction, and the
+ * delivery plan is only updated after that transaction is committed. This way the plan is changed in
+ * the same order as the database, and a rolled back change leaves the plan untouched.
+ * Reading the queue only reads the delivery plan and doesn't need a transaction.
  */
 @Service
 public class OrderService {
@@ -44,6 +50,8 @@ public class OrderService {
 
     private final OrderRepository repository;
 
+    private final TransactionTemplate transactionTemplate;
+
     @PersistenceContext
     private EntityManager em;
 
@@ -52,7 +60,7 @@ public class OrderService {
      * Used to calculate the approximate wait time for orders.
      * TODO: This should be stored in the database so that the service remains stateless.
      */
-    private Instant lastDeliveryTime;
+    private volatile Instant lastDeliveryTime;
 
     /**
      * Tracks the contents of the cart when a delivery has been requested.
@@ -63,21 +71,35 @@ public class OrderService {
     @SuppressWarnings("unused")
     private List<Order> cartContents;
 
-    public OrderService(OrderRepository repository) {
+    /**
+     * The planned carts for all orders that are not in the {@link #cartContents}.
+     * It is loaded from the database on first use and afterwards updated after every committed
+     * change to the queue, so that the queue positions, wait times and upcoming deliveries
+     * don't have to be recomputed from all orders for every request.
+     * TODO: Like the cart contents, this only works as long as there is a single instance of the service.
+     */
+    private volatile DeliveryPlan deliveryPlan;
+
+    public OrderService(OrderRepository repository, PlatformTransactionManager transactionManager) {
         this.repository = repository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
         this.lastDeliveryTime = Instant.now();
     }
 
-    @Transactional(readOnly = true)
     public List<OrderDto> getAllOrderQueueEntries() {
         try (Stream<OrderDto> orders = getAllOrderDtosInternal()) {
             return orders.collect(Collectors.toList());
         }
     }
 
-    @Transactional
-    public OrderDto addNewOrder(int clientId, int donutQuantity)
-            throws MultipleOrdersException, OrderNotFoundException, OrderTooLargeException {
+    /**
+     * Adds a new order to the queue. The order is added to the delivery plan once the
+     * transaction is committed, and its queue position and wait time are taken from there.
+     *
+     * @return the added order with the queue position and the approximate wait time
+     */
+    public synchronized OrderDto addNewOrder(int clientId, int donutQuantity)
+            throws MultipleOrdersException, OrderTooLargeException {
         // Check if the order is too big. Since the cart can only hold MAX_DELIVERY_SIZE
         // and orders can't be split for delivery, an order can't be larger than
         // MAX_DELIVERY_SIZE, too.
@@ -90,19 +112,24 @@ public class OrderService {
             throw new MultipleOrdersException();
         }
 
+        // Make sure the plan is loaded before saving, otherwise the new order would be added to it twice
+        final DeliveryPlan plan = getDeliveryPlan();
+
         // Create and save the order. Refresh the entity so that the state of the derived priority column is correct.
-        final Order newOrder = repository.save(new Order(clientId, donutQuantity, Timestamp.from(Instant.now())));
-        em.refresh(newOrder);
+        final Order newOrder = transactionTemplate.execute(status -> {
+            final Order order = repository.save(new Order(clientId, donutQuantity, Timestamp.from(Instant.now())));
+            em.refresh(order);
+            return order;
+        });
+        final DeliveryPlan.Placement placement = plan.add(newOrder);
 
-        return getOrderById(newOrder.getOrderId());
+        return new OrderDto(newOrder, placement.queuePosition, formatWaitTime(getDispatchTime(placement.cartIndex)));
     }
 
-    @Transactional(readOnly = true)
     public OrderDto getOrderById(int id) throws OrderNotFoundException {
         return findOrderWithPredicate(orderDto -> id == orderDto.orderId);
     }
 
-    @Transactional(readOnly = true)
     public OrderDto getOrderByCustomerId(int id) throws OrderNotFoundException {
         return findOrderWithPredicate(orderDto -> id == orderDto.clientId);
     }
@@ -113,10 +140,12 @@ public class OrderService {
      * @param clientId The id of the client for whom the order is supposed to be deleted.
      * @throws OrderNotFoundException thrown when there are no orders for the specified customer
      */
-    @Transactional
-    public void deleteOrderByCustomerId(int clientId) throws OrderNotFoundException {
+    public synchronized void deleteOrderByCustomerId(int clientId) throws OrderNotFoundException {
         if (repository.existsByClientId(clientId)) {
-            repository.deleteByClientId(clientId);
+            final DeliveryPlan plan = getDeliveryPlan();
+            transactionTemplate.executeWithoutResult(status -> repository.deleteByClientId(clientId));
+            // The order isn't in the plan if it is already in the cart
+            plan.removeByClientId(clientId);
         } else {
             throw new OrderNotFoundException();
         }
@@ -133,32 +162,46 @@ public class OrderService {
      * subsequent calls to the method return the same list.
      * To finish a delivery and remove those orders, the method {@link #finishDelivery}
      * must be called.
+     * Synchronized with the changes to the queue, so that concurrent calls take only one cart
+     * from the delivery plan.
      */
-    @Transactional(readOnly = true)
-    public List<Order> getNextDelivery() {
+    public synchronized List<Order> getNextDelivery() {
         if (cartContents == null) {
-            try (Stream<Order> orders = repository.findAllOrdersByPriority()) {
-                // Collect all orders until the MAX_DELIVERY_SIZE is reached
-                final AtomicInteger deliverySize = new AtomicInteger(0);
-                cartContents = orders
-                        .takeWhile(order -> deliverySize.addAndGet(order.getDonutQuantity()) <= MAX_DELIVERY_SIZE)
-                        .collect(Collectors.toList());
-                lastDeliveryTime = Instant.now();
-            }
+            // The first planned cart contains all orders until the MAX_DELIVERY_SIZE is reached
+            cartContents = getDeliveryPlan().removeFirstCart();
+            lastDeliveryTime = Instant.now();
         }
         return cartContents;
     }
 
+    /**
+     * Returns the planned deliveries that are not yet in the cart, together with their projected
+     * dispatch times (under the assumption that the delivery is every DELIVERY_INTERVAL).
+     * The orders of the deliveries are determined the same way as in {@link #getNextDelivery}.
+     *
+     * @param count The maximal number of deliveries to return.
+     */
+    public List<DeliveryDto> getUpcomingDeliveries(int count) {
+        final List<List<Order>> carts = getDeliveryPlan().getCarts();
+        return IntStream.range(0, Math.min(count, carts.size()))
+                .mapToObj(index -> {
+                    final Instant dispatchTime = getDispatchTime(index);
+                    return new DeliveryDto(carts.get(index), index + 1, dispatchTime, formatWaitTime(dispatchTime));
+                })
+                .collect(Collectors.toList());
+    }
+
     /**
      * Finishes a delivery by deleting the orders from the database.
      * Its necessary to call this after finishing a delivery because otherwise
      * subsequent calls to {@see #getNextDelivery} will return the same list
      * of orders.
      */
-    @Transactional
-    public void finishDelivery() {
+    public synchronized void finishDelivery() {
         if (cartContents != null) {
-            repository.deleteAll(cartContents);
+            // Keep the cart if the deletion fails, otherwise its orders would neither be
+            // in the cart nor in the delivery plan anymore
+            transactionTemplate.executeWithoutResult(status -> repository.deleteAll(cartContents));
             cartContents = null;
         }
     }
@@ -175,8 +218,7 @@ public class OrderService {
          * and the estimated wait time, we can't just fetch the requested order
          * from the database. We actually have to get all previous orders, too,
          * since this data is not stored in the database.
-         * This might be a costly operation depending on the application, but is
-         * acceptable in this case, considering the queue shouldn't get too long.
+         * Those are taken from the delivery plan, so the database isn't queried for this.
          */
         try (Stream<OrderDto> orders = getAllOrderDtosInternal()) {
             return orders
@@ -187,46 +229,64 @@ public class OrderService {
     }
 
     /**
-     * Reads a stream of all orders in the database and converts them into OrderDto objects.
-     * The orders are returned from the database already sorted in the correct queue order.
+     * Converts all orders in the delivery plan into OrderDto objects.
+     * The orders in the plan are already sorted in the correct queue order and distributed
+     * onto the carts of the upcoming deliveries.
      * The conversion into DTOs determines the queue position (which is obviously not stored
      * in the database explicitly, since it would change on every insert or delete) and the
-     * approximate wait time (this is also not in the database).
+     * approximate wait time (this is also not in the database), which is the time until the
+     * delivery of the cart containing the order.
      */
     private Stream<OrderDto> getAllOrderDtosInternal() {
-        // Counts the position of the order in the queue
-        final AtomicInteger queuePosition = new AtomicInteger(1);
+        final List<List<Order>> carts = getDeliveryPlan().getCarts();
+        final List<OrderDto> orderDtos = new ArrayList<>();
+        for (int cartIndex = 0; cartIndex < carts.size(); cartIndex++) {
+            final String waitDurationString = formatWaitTime(getDispatchTime(cartIndex));
+            for (Order order : carts.get(cartIndex)) {
+                orderDtos.add(new OrderDto(order, orderDtos.size() + 1, waitDurationString));
+            }
+        }
+        return orderDtos.stream();
+    }
+
+    /**
+     * Returns the delivery plan, and loads it from the database if that hasn't happened yet.
+     * Loading is synchronized with the changes to the queue, so no change can be missed or applied twice.
+     */
+    private DeliveryPlan getDeliveryPlan() {
+        DeliveryPlan plan = deliveryPlan;
+        if (plan == null) {
+            synchronized (this) {
+                if (deliveryPlan == null) {
+                    deliveryPlan = transactionTemplate.execute(status -> {
+                        try (Stream<Order> orders = repository.findAllOrdersByPriority()) {
+                            return new DeliveryPlan(orders
+                                    .filter(order -> cartContents == null || !cartContents.contains(order)));
+                        }
+                    });
+                }
+                plan = deliveryPlan;
+            }
+        }
+        return plan;
+    }
 
+    /**
+     * Returns the projected dispatch time of a planned cart. The next cart is presumed to be delivered
+     * DELIVERY_INTERVAL after the last delivery, or right away if that time has already passed, and
+     * every following cart another DELIVERY_INTERVAL later.
+     */
+    private Instant getDispatchTime(int cartIndex) {
         final Instant nextDelivery = lastDeliveryTime.plus(DELIVERY_INTERVAL);
+        final Instant now = Instant.now();
+        return (nextDelivery.isBefore(now) ? now : nextDelivery).plus(DELIVERY_INTERVAL.multipliedBy(cartIndex));
+    }
 
-        // Tracks the approximate wait time for orders. It is initialized with the difference between now and
-        // the next presumed delivery time (based on the last delivery), and incremented by DELIVERY_INTERVAL
-        // with every order that wouldn't fit into the delivery.
-        final AtomicLong approxWaitTime = new AtomicLong(Duration.between(Instant.now(), nextDelivery).toSeconds());
-
-        // Tracks the size of a delivery. Every time an order would go over the maximum delivery size, this gets
-        // set back to the size of the current order and the wait time is incremented by DELIVERY_INTERVAL.
-        final AtomicInteger deliverySize = new AtomicInteger(0);
-
-        return repository.findAllOrdersByPriority()
-                .filter(order -> cartContents == null || !cartContents.contains(order))
-                .map(order -> {
-                    // Check if this order would fit into the current delivery and compute the approximate wait time
-                    // accordingly (under the assumption that the delivery is every DELIVERY_INTERVAL).
-                    int newDeliverySize = deliverySize.get() + order.getDonutQuantity();
-                    long currentWaitTime;
-                    if (newDeliverySize <= MAX_DELIVERY_SIZE) {
-                        // Order would fit, increment size
-                        deliverySize.set(newDeliverySize);
-                        currentWaitTime = approxWaitTime.get();
-                    } else {
-                        // Order wouldn't fit, reset size and increment wait time
-                        deliverySize.set(order.getDonutQuantity());
-                        currentWaitTime = approxWaitTime.addAndGet(DELIVERY_INTERVAL.toSeconds());
-                    }
-                    Duration waitDuration = Duration.of(currentWaitTime, ChronoUnit.SECONDS);
-                    String waitDurationString = String.format("%d:%02d", waitDuration.toMinutesPart(), waitDuration.toSecondsPart());
-                    return new OrderDto(order, queuePosition.getAndIncrement(), waitDurationString);
-                });
+    /**
+     * Formats the approximate wait time between now and the dispatch time as total minutes and seconds.
+     */
+    private static String formatWaitTime(Instant dispatchTime) {
+        Duration waitDuration = Duration.between(Instant.now(), dispatchTime).truncatedTo(ChronoUnit.SECONDS);
+        return String.format("%d:%02d", waitDuration.toMinutes(), waitDuration.toSecondsPart());
     }
 }
@@ -0,0 +1,198 @@
+package de.belzmann.donut.controller;
+
+import de.belzmann.donut.service.OrderService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.hamcrest.Matchers.matchesPattern;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Tests for the delivery endpoints. Every test starts with an empty queue.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class DeliveryControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private OrderService service;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Removes the constraints that are used for failing changes, and delivers all remaining orders,
+     * which also removes them from the database and the delivery plan.
+     */
+    @AfterEach
+    void clearQueue() {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS order_references");
+        jdbcTemplate.execute("ALTER TABLE orders DROP CONSTRAINT IF EXISTS small_orders");
+        do {
+            service.finishDelivery();
+        } while (!service.getNextDelivery().isEmpty());
+        service.finishDelivery();
+    }
+
+    @Test
+    void zeroCountReturnsNoDeliveries() throws Exception {
+        addOrder(1000, 30);
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "0"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)));
+    }
+
+    @Test
+    void negativeCountIsRejected() throws Exception {
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "-1"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void countLargerThanNumberOfCartsReturnsAllCarts() throws Exception {
+        addOrder(1000, 30);
+        addOrder(1001, 30);
+        addOrder(1002, 10);
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].deliveryPosition").value(1))
+                .andExpect(jsonPath("$[0].donutQuantity").value(30))
+                .andExpect(jsonPath("$[0].orders[0].clientId").value(1000))
+                .andExpect(jsonPath("$[1].deliveryPosition").value(2))
+                .andExpect(jsonPath("$[1].donutQuantity").value(40))
+                .andExpect(jsonPath("$[1].orders[1].clientId").value(1002));
+    }
+
+    @Test
+    void upcomingDeliveriesExcludeCartOfNextDelivery() throws Exception {
+        addOrder(1000, 30);
+        addOrder(1001, 30);
+        addOrder(1002, 30);
+
+        mockMvc.perform(get("/nextDelivery"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].clientId").value(1000));
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].deliveryPosition").value(1))
+                .andExpect(jsonPath("$[0].orders[0].clientId").value(1001))
+                .andExpect(jsonPath("$[1].orders[0].clientId").value(1002));
+    }
+
+    @Test
+    void firstUpcomingDeliveryIsNextAfterFinishingDelivery() throws Exception {
+        addOrder(1000, 30);
+        addOrder(1001, 30);
+        addOrder(1002, 30);
+        mockMvc.perform(get("/nextDelivery")).andExpect(status().isOk());
+
+        mockMvc.perform(delete("/nextDelivery")).andExpect(status().isOk());
+
+        mockMvc.perform(get("/orders"))
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].clientId").value(1001))
+                .andExpect(jsonPath("$[0].queuePosition").value(1));
+        mockMvc.perform(get("/nextDelivery"))
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].clientId").value(1001));
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "10"))
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].deliveryPosition").value(1))
+                .andExpect(jsonPath("$[0].orders[0].clientId").value(1002));
+    }
+
+    @Test
+    void rolledBackAddLeavesPlanUnchanged() throws Exception {
+        addOrder(1000, 30);
+        jdbcTemplate.execute("ALTER TABLE orders ADD CONSTRAINT small_orders CHECK (donut_quantity < 40)");
+
+        assertThrows(DataAccessException.class, () -> service.addNewOrder(1001, 45));
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "10"))
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].donutQuantity").value(30));
+        mockMvc.perform(get("/orders").param("clientId", "1001"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void rolledBackDeleteLeavesPlanUnchanged() throws Exception {
+        addOrder(1000, 30);
+        addOrder(1001, 10);
+        // The reference keeps the order from being deleted
+        jdbcTemplate.execute("CREATE TABLE order_references (order_id INT REFERENCES orders(order_id))");
+        jdbcTemplate.update("INSERT INTO order_references VALUES (?)", service.getOrderByCustomerId(1000).orderId);
+
+        assertThrows(DataAccessException.class, () -> service.deleteOrderByCustomerId(1000));
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "10"))
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].donutQuantity").value(40));
+        mockMvc.perform(get("/orders").param("clientId", "1000"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.queuePosition").value(1));
+    }
+
+    @Test
+    void waitTimesAboveAnHourCountTotalMinutes() throws Exception {
+        // Every order fills a whole cart, so the 13th cart is delivered 13 delivery intervals (65 minutes)
+        // after the last delivery, which is the end of the previous test or the start of the service
+        for (int clientId = 1000; clientId < 1013; clientId++) {
+            addOrder(clientId, 50);
+        }
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "13"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(13)))
+                .andExpect(jsonPath("$[12].approximateWaitTime").value(matchesPattern("6[45]:\\d\\d")))
+                .andExpect(jsonPath("$[12].orders[0].clientId").value(1012));
+
+        mockMvc.perform(get("/orders").param("clientId", "1012"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.approximateWaitTime").value(matchesPattern("6[45]:\\d\\d")));
+    }
+
+    @Test
+    void overdueDeliveryIsProjectedForNow() throws Exception {
+        ReflectionTestUtils.setField(service, "lastDeliveryTime", Instant.now().minus(Duration.ofHours(1)));
+        addOrder(1000, 50);
+        addOrder(1001, 50);
+
+        mockMvc.perform(get("/deliveries/upcoming").param("count", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].approximateWaitTime").value("0:00"))
+                .andExpect(jsonPath("$[1].approximateWaitTime").value(matchesPattern("(4:5\\d|5:00)")));
+    }
+
+    private void addOrder(int clientId, int quantity) throws Exception {
+        mockMvc.perform(post("/orders")
+                        .param("clientId", String.valueOf(clientId))
+                        .param("quantity", String.valueOf(quantity)))
+                .andExpect(status().isOk());
+    }
+}
@@ -0,0 +1,130 @@
+package de.belzmann.donut.service;
+
+import de.belzmann.donut.model.Order;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the incrementally updated delivery plan always has the same carts
+ * as a plan that is built from scratch from the same orders.
+ */
+class DeliveryPlanTest {
+
+    private final List<Order> orders = new ArrayList<>();
+
+    private final DeliveryPlan plan = new DeliveryPlan(Stream.empty());
+
+    @Test
+    void insertAtStartOfLaterCartMovesOrderIntoPreviousCart() {
+        final Order premium = add(1, true, 30);
+        final Order regular = add(2, false, 30);
+        final Order lastRegular = add(3, false, 30);
+
+        // Comes right after the first premium order, i.e. at the start of the second cart, but fits into the first one
+        final Order laterPremium = add(4, true, 20);
+
+        assertPlan(List.of(List.of(premium, laterPremium), List.of(regular), List.of(lastRegular)));
+    }
+
+    @Test
+    void removeFirstOrderOfCart() {
+        final Order first = add(1, false, 30);
+        final Order second = add(2, false, 30);
+        final Order third = add(3, false, 10);
+        assertPlan(List.of(List.of(first), List.of(second, third)));
+
+        remove(second);
+
+        assertPlan(List.of(List.of(first, third)));
+    }
+
+    @Test
+    void removeLastOrderOfCart() {
+        final Order first = add(1, false, 30);
+        final Order second = add(2, false, 20);
+        final Order third = add(3, false, 20);
+        final Order fourth = add(4, false, 20);
+        final Order fifth = add(5, false, 20);
+        assertPlan(List.of(List.of(first, second), List.of(third, fourth), List.of(fifth)));
+
+        remove(second);
+
+        assertPlan(List.of(List.of(first, third), List.of(fourth, fifth)));
+    }
+
+    @Test
+    void removeFirstCartKeepsFollowingCarts() {
+        final Order first = add(1, false, 30);
+        final Order second = add(2, false, 30);
+        final Order third = add(3, false, 10);
+
+        assertEquals(List.of(first), plan.removeFirstCart());
+        orders.remove(first);
+
+        assertPlan(List.of(List.of(second, third)));
+    }
+
+    @Test
+    void emptyPlan() {
+        assertTrue(plan.removeFirstCart().isEmpty());
+        assertFalse(plan.removeByClientId(1));
+        assertPlan(List.of());
+    }
+
+    @Test
+    void randomChangesMatchRebuiltPlan() {
+        final Random random = new Random(42);
+        int nextId = 1;
+        for (int step = 0; step < 2000; step++) {
+            final int operation = random.nextInt(6);
+            if (orders.isEmpty() || operation < 4) {
+                add(nextId++, random.nextBoolean(), 1 + random.nextInt(OrderService.MAX_DELIVERY_SIZE));
+            } else if (operation == 4) {
+                orders.removeAll(plan.removeFirstCart());
+            } else {
+                remove(orders.get(random.nextInt(orders.size())));
+            }
+            assertEquals(rebuild(), plan.getCarts(), "Plan differs from rebuilt plan after step " + step);
+        }
+    }
+
+    /**
+     * Creates an order and adds it to the plan. The id is also used as the client id and the order time.
+     * Also checks that the returned placement matches the position of the order in the planned carts.
+     */
+    private Order add(int id, boolean isPriority, int donutQuantity) {
+        final Order order = new Order(id, donutQuantity, new Timestamp(id)).setOrderId(id);
+        ReflectionTestUtils.setField(order, "isPriority", isPriority);
+        orders.add(order);
+        final DeliveryPlan.Placement placement = plan.add(order);
+
+        final List<List<Order>> carts = plan.getCarts();
+        assertTrue(carts.get(placement.cartIndex).contains(order));
+        assertEquals(order, carts.stream().flatMap(List::stream).skip(placement.queuePosition - 1).findFirst().orElseThrow());
+        return order;
+    }
+
+    private void remove(Order order) {
+        orders.remove(order);
+        assertTrue(plan.removeByClientId(order.getClientId()));
+    }
+
+    private List<List<Order>> rebuild() {
+        return new DeliveryPlan(orders.stream().sorted(DeliveryPlan.QUEUE_ORDER)).getCarts();
+    }
+
+    private void assertPlan(List<List<Order>> expected) {
+        assertEquals(expected, plan.getCarts());
+        assertEquals(rebuild(), plan.getCarts());
+    }
+}
@@ -0,0 +1,125 @@
+#!/bin/bash
+#
+# Measures the startup of the service: the time from starting the JVM until the first
+# successful GET /orders, and the resident set size (RSS) of the process at that point.
+# Needs Linux (the RSS is read from /proc) and GNU date (for millisecond timestamps).
+#
+# Build the application first, either the regular fat jar with `./mvnw clean package` for
+# the default mode, or the plain jar with `./mvnw -Pfast-start clean package` for the
+# fast-start mode. In fast-start mode the script creates a class data sharing (CDS) archive
+# with a training run if it doesn't exist yet or is older than the build, and starts the
+# service with it. The JVM output of the last run is written to target/startup-benchmark.log.
+#
+# Usage: ./startup-benchmark.sh default|fast-start [runs]
+# Environment: PORT (default 8080), JAVA_OPTS (additional JVM options)
+
+set -e
+
+MODE=$1
+RUNS=${2:-5}
+PORT=${PORT:-8080}
+JAR=$(ls target/donut-*.jar 2> /dev/null | head -n 1)
+CDS_ARCHIVE=target/donut.jsa
+LOG=target/startup-benchmark.log
+
+case "$MODE" in
+    default | fast-start) ;;
+    *)
+        echo "Usage: $0 default|fast-start [runs]" >&2
+        exit 1
+        ;;
+esac
+if ! [[ "$RUNS" =~ ^[0-9]+$ ]] || [ "$RUNS" -eq 0 ]; then
+    echo "The number of runs must be a positive integer, but was '$RUNS'." >&2
+    exit 1
+fi
+if [ -z "$JAR" ]; then
+    echo "No jar found in target. Build it first, see $0." >&2
+    exit 1
+fi
+
+# The fat jar of the default build contains the dependencies in BOOT-INF, the plain jar of the fast-start build doesn't
+if jar tf "$JAR" | grep -q '^BOOT-INF/'; then
+    BUILD=default
+else
+    BUILD=fast-start
+fi
+if [ "$MODE" != "$BUILD" ]; then
+    echo "$JAR is a $BUILD build, but the $MODE mode was requested. Rebuild it first, see $0." >&2
+    exit 1
+fi
+
+now_ms() {
+    echo $(($(date +%s%N) / 1000000))
+}
+
+# Starts the service with the given JVM options and waits for the first successful GET /orders.
+# Sets PID, STARTUP_MS and RSS_KB.
+start_service() {
+    # Otherwise the first request would be answered by whatever is already listening on the port
+    if (exec 3<> "/dev/tcp/localhost/$PORT") 2> /dev/null; then
+        echo "Port $PORT is already in use, stop the process using it or set another PORT." >&2
+        exit 1
+    fi
+    START=$(now_ms)
+    # shellcheck disable=SC2086
+    java $JAVA_OPTS "$@" -jar "$JAR" --server.port="$PORT" > "$LOG" 2>&1 &
+    PID=$!
+    until curl -sf -o /dev/null "http://localhost:$PORT/orders"; do
+        if ! kill -0 "$PID" 2> /dev/null; then
+            echo "The service exited before answering GET /orders:" >&2
+            tail -n 20 "$LOG" >&2
+            exit 1
+        fi
+        sleep 0.01
+    done
+    STARTUP_MS=$(($(now_ms) - START))
+    RSS_KB=$(awk '/VmRSS/ { print $2 }' "/proc/$PID/status")
+}
+
+stop_service() {
+    if [ -n "$PID" ] && kill -0 "$PID" 2> /dev/null; then
+        kill "$PID"
+        wait "$PID" || true
+    fi
+    PID=
+}
+
+# Don't leave a service running when the script fails or is interrupted
+trap stop_service EXIT
+trap 'exit 130' INT TERM
+
+if [ "$MODE" = fast-start ] &&
+    { [ ! -f "$CDS_ARCHIVE" ] || [ "$JAR" -nt "$CDS_ARCHIVE" ] || [ -n "$(find target/lib -newer "$CDS_ARCHIVE")" ]; }; then
+    echo "Creating CDS archive $CDS_ARCHIVE"
+    rm -f "$CDS_ARCHIVE"
+    # The archive is written when the JVM exits, so it contains all classes loaded up to the first request
+    start_service -XX:ArchiveClassesAtExit="$CDS_ARCHIVE"
+    stop_service
+    if [ ! -f "$CDS_ARCHIVE" ]; then
+        echo "The CDS archive could not be created:" >&2
+        tail -n 20 "$LOG" >&2
+        exit 1
+    fi
+fi
+
+if [ "$MODE" = fast-start ]; then
+    # Fail instead of silently running without CDS if the archive doesn't match the classpath
+    set -- -Xshare:on -XX:SharedArchiveFile="$CDS_ARCHIVE"
+else
+    set --
+fi
+
+echo "Measuring $RUNS runs of $JAR ($MODE)"
+TOTAL_MS=0
+TOTAL_RSS_KB=0
+RUN=1
+while [ "$RUN" -le "$RUNS" ]; do
+    start_service "$@"
+    stop_service
+    echo "Run $RUN: first successful GET /orders after $STARTUP_MS ms, RSS $((RSS_KB / 1024)) MB"
+    TOTAL_MS=$((TOTAL_MS + STARTUP_MS))
+    TOTAL_RSS_KB=$((TOTAL_RSS_KB + RSS_KB))
+    RUN=$((RUN + 1))
+done
+echo "Average: first successful GET /orders after $((TOTAL_MS / RUNS)) ms, RSS $((TOTAL_RSS_KB / RUNS / 1024)) MB"